@@ -0,0 +1,365 @@
+package com.dormbells.writer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.xml.sax.SAXException;
+
+import com.dormbells.writer.Writer.Error;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Scale test harness for the Writer pipeline. Runs the same stages
+ * Writer does over a corpus of song XML files, without a serial port:
+ *
+ * parse   - every file is parsed into a Song and kept, as in Writer.main()
+ * compile - tones and beats are computed for every Song
+ * encode  - the byte stream is built as in Writer.send(), minus the memory limit
+ *
+ * For each stage the throughput, heap and garbage collection pauses
+ * are reported. MB/s is XML read for parse and bytes built for encode.
+ * Heap and pause figures come from GC notifications: peak is the
+ * largest heap usage just before a collection (or at the end of the
+ * stage), and retained is the usage after a full GC once the stage
+ * is done. Pauses of concurrent collector cycles are not counted.
+ *
+ * Writer.DEBUG is turned off so the timings measure the pipeline
+ * rather than debug formatting; run with -Dwriter.debug=true to
+ * include it. Debug output is discarded either way.
+ *
+ * Run with a fixed -Xmx to find where the corpus stops fitting.
+ * On failure, including running out of heap, the exit status is
+ * the Writer.Error ordinal plus one.
+ *
+ * Usage: ScaleTest file_or_dir [file_or_dir ...]
+ *
+ * Copyright (C) 2010  DormBells
+ */
+
+/*
+ * This file is part of Writer.
+ *
+ * Writer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Writer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Writer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class ScaleTest {
+
+	/** pauses at least this long are counted separately */
+	private static final long LONG_PAUSE_MS = 100;
+
+	private List<File> files;
+	private long totalBytes;
+	private long totalNotes;
+
+	// results of each stage, kept alive like Writer keeps them
+	private List<Song> songs;
+	private List<int[]> tones;
+	private List<int[]> beats;
+	private List<Integer> data;
+
+	// progress of the stage currently running
+	private String stageName;
+	private int stageProgress;
+	private long stageStart;
+
+	// GC figures for the stage currently running, updated from notifications
+	private Set<String> heapPools = new HashSet<String>();
+	private long gcBaseline;
+	private long gcNotified;
+	private long gcPauses;
+	private long gcPauseTotal;
+	private long gcPauseMax;
+	private long gcLongPauses;
+	private long peakHeap;
+
+	/**
+	 * Constructor for a new scale test
+	 * @param files the song XML files to run through the pipeline
+	 */
+	public ScaleTest(List<File> files) {
+		this.files = files;
+		for (File f : files) totalBytes += f.length();
+	}
+
+	/**
+	 * Runs all stages and prints a report for each one.
+	 * Exits at the first stage that runs out of memory.
+	 */
+	public void run() {
+		listenForGC();
+		System.out.printf("%d files, %.1f MB of XML, max heap %.1f MB%n",
+				files.size(), totalBytes / 1e6, Runtime.getRuntime().maxMemory() / 1e6);
+		System.out.printf("%-8s %10s %12s %12s %10s %14s %10s %6s %8s %10s %8s%n", "stage", "time (ms)",
+				"songs/s", "notes/s", "MB/s", "retained (MB)", "peak (MB)", "GCs", "GC (ms)",
+				"max (ms)", ">" + LONG_PAUSE_MS + "ms");
+
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] b, int off, int len) { }
+		}));
+		try {
+			startStage("parse");
+			parse();
+			endStage(console, totalBytes);
+
+			startStage("compile");
+			compile();
+			endStage(console, -1);
+
+			startStage("encode");
+			encode();
+			endStage(console, data.size());
+		} catch (OutOfMemoryError e) {
+			// drop everything so there is room to report
+			songs = null; tones = null; beats = null; data = null;
+			System.gc();
+			console.println("Out of memory in " + stageName + " after " + stageProgress +
+					" of " + files.size() + " songs (" + totalNotes + " notes read)");
+			System.exit(Error.SYSTEM_ERROR.ordinal() + 1);
+		} finally {
+			System.setOut(console);
+		}
+	}
+
+	/**
+	 * Parses every file into a Song, keeping them all in memory
+	 */
+	private void parse() {
+		songs = new ArrayList<Song>();
+		for (File f : files) {
+			Song song = new Song();
+			try {
+				XMLParser xp = new XMLParser(song);
+				xp.parse(f.getPath());
+			} catch (FileNotFoundException e) {
+				System.err.println("Input XML File " + f + " not found.  Exiting.");
+				System.exit(Error.INVALID_FILE.ordinal() + 1);
+			} catch (SAXException e) {
+				e.printStackTrace();
+				System.exit(Error.SYSTEM_ERROR.ordinal() + 1);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(Error.SYSTEM_ERROR.ordinal() + 1);
+			}
+			songs.add(song);
+			totalNotes += song.getLength();
+			stageProgress++;
+		}
+	}
+
+	/**
+	 * Computes the tick and beat values of every Song
+	 */
+	private void compile() {
+		tones = new ArrayList<int[]>(songs.size());
+		beats = new ArrayList<int[]>(songs.size());
+		for (Song song : songs) {
+			tones.add(song.getNotesTones());
+			beats.add(song.getNotesBeats());	// changes tempo, so only once per song
+			stageProgress++;
+		}
+	}
+
+	/**
+	 * Builds the transmitted data in the same layout as Writer.send()
+	 */
+	private void encode() {
+		data = new ArrayList<Integer>();
+		for (int s = 0; s < songs.size(); s++) {
+			Song song = songs.get(s);
+			int[] songTones = tones.get(s);
+			int[] songBeats = beats.get(s);
+
+			data.add(song.getLength());
+			data.add(song.getPause());
+			data.add(song.getTempo() & 0xFF);	// MSP430 is little endian
+			data.add((song.getTempo() >> 8) & 0xFF);
+			for (int i = 0; i < songTones.length; i++) { data.add(songTones[i]); data.add(songBeats[i]); }
+			stageProgress++;
+		}
+	}
+
+	private void startStage(String name) {
+		System.gc();
+		awaitGCNotifications();
+		stageName = name;
+		stageProgress = 0;
+		synchronized (this) {
+			gcPauses = gcPauseTotal = gcPauseMax = gcLongPauses = 0;
+			peakHeap = heapUsed();
+		}
+		stageStart = System.nanoTime();
+	}
+
+	/**
+	 * Finishes timing the current stage and prints its report line.
+	 * @param console where to print the report
+	 * @param bytes the bytes the stage read or built, or -1 if that does not apply
+	 */
+	private void endStage(PrintStream console, long bytes) {
+		double seconds = (System.nanoTime() - stageStart) / 1e9;
+		long used = heapUsed();
+		awaitGCNotifications();
+		long pauses, pauseTotal, pauseMax, longPauses, peak;
+		synchronized (this) {
+			pauses = gcPauses;
+			pauseTotal = gcPauseTotal;
+			pauseMax = gcPauseMax;
+			longPauses = gcLongPauses;
+			peak = Math.max(peakHeap, used);
+		}
+
+		// collect first so only what the stage keeps alive is counted
+		System.gc();
+		long retained = heapUsed();
+
+		String rate = bytes < 0 ? "-" : String.format("%.1f", bytes / 1e6 / seconds);
+		console.printf("%-8s %10.1f %12.1f %12.0f %10s %14.1f %10.1f %6d %8d %10d %8d%n", stageName,
+				seconds * 1000, songs.size() / seconds, totalNotes / seconds, rate,
+				retained / 1e6, peak / 1e6, pauses, pauseTotal, pauseMax, longPauses);
+	}
+
+	/**
+	 * Subscribes to notifications from every garbage collector
+	 */
+	private void listenForGC() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) heapPools.add(pool.getName());
+
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification n, Object handback) {
+				if (n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+					collected(GarbageCollectionNotificationInfo.from((CompositeData)n.getUserData()));
+			}
+		};
+		synchronized (this) {
+			gcBaseline = gcCount();
+		}
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			((NotificationEmitter)gc).addNotificationListener(listener, null, null);
+	}
+
+	/**
+	 * Records one collection against the current stage
+	 * @param info the details of the collection
+	 */
+	private synchronized void collected(GarbageCollectionNotificationInfo info) {
+		gcNotified++;
+		GcInfo gcInfo = info.getGcInfo();
+
+		// the heap only grows between collections, so it peaks just before one
+		long before = 0;
+		for (Map.Entry<String, MemoryUsage> e : gcInfo.getMemoryUsageBeforeGc().entrySet())
+			if (heapPools.contains(e.getKey())) before += e.getValue().getUsed();
+		if (before > peakHeap) peakHeap = before;
+
+		// concurrent cycles run alongside the program rather than pausing it
+		if (info.getGcName().toLowerCase().contains("concurrent")) return;
+		long duration = gcInfo.getDuration();
+		gcPauses++;
+		gcPauseTotal += duration;
+		if (duration > gcPauseMax) gcPauseMax = duration;
+		if (duration >= LONG_PAUSE_MS) gcLongPauses++;
+	}
+
+	/**
+	 * Waits for notifications of every collection so far to arrive,
+	 * since they are delivered on another thread after the fact
+	 */
+	private void awaitGCNotifications() {
+		long deadline = System.currentTimeMillis() + 1000;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized (this) {
+				if (gcNotified >= gcCount() - gcBaseline) return;
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) { return; }
+		}
+	}
+
+	private long heapUsed() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) used += pool.getUsage().getUsed();
+		return used;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	/**
+	 * arguments are song XML files or directories of them
+	 * @param args
+	 */
+	public static void main(String args[]) {
+		if (args.length < 1) {
+			System.err.println("Usage: ScaleTest file_or_dir [file_or_dir ...]");
+			System.exit(Error.INVALID_INPUT.ordinal() + 1);
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			File f = new File(arg);
+			if (f.isDirectory()) {
+				File[] contents = f.listFiles();
+				if (contents == null) {
+					System.err.println("Input directory " + arg + " could not be read.  Exiting.");
+					System.exit(Error.INVALID_FILE.ordinal() + 1);
+				}
+				Arrays.sort(contents);
+				for (File c : contents)
+					if (c.getName().endsWith(".xml")) files.add(c);
+			}
+			else if (f.isFile())
+				files.add(f);
+			else {
+				System.err.println("Input " + arg + " not found.  Exiting.");
+				System.exit(Error.INVALID_FILE.ordinal() + 1);
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("No song files given.  Exiting.");
+			System.exit(Error.INVALID_INPUT.ordinal() + 1);
+		}
+
+		Writer.DEBUG = Boolean.getBoolean("writer.debug");
+		new ScaleTest(files).run();
+	}
+}
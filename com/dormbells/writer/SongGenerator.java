@@ -0,0 +1,226 @@
+package com.dormbells.writer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import com.dormbells.writer.Writer.Error;
+
+/**
+ * Seeded generator of synthetic song XML files for stress testing.
+ * Produces songs in the same format as the files in songs/, with
+ * random-walk melodies over the piano keys (A0 to C8), occasional rests,
+ * a mix of dotted and undotted note values, and a range of tempos.
+ *
+ * Every generated song is playable: note values are restricted per song
+ * so that Song.getNotesBeats() never rejects a note as too long.
+ * The same seed always produces the same corpus.
+ *
+ * Usage: SongGenerator output_dir song_count total_notes [seed]
+ * On failure the exit status is the Writer.Error ordinal plus one.
+ *
+ * Copyright (C) 2010  DormBells
+ */
+
+/*
+ * This file is part of Writer.
+ *
+ * Writer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Writer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Writer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class SongGenerator {
+
+	/** note names within an octave, starting from C, sharps and flats mixed */
+	private static final String[] SHARP_NAMES =
+		{ "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+	private static final String[] FLAT_NAMES =
+		{ "C", "Db", "D", "Eb", "E", "F", "Gb", "G", "Ab", "A", "Bb", "B" };
+	/** undotted note values; each is also used dotted when it fits the tempo */
+	private static final int[] NOTE_VALUES = { 1, 2, 4, 8, 16, 32 };
+	/** lower numerals of the time signature */
+	private static final int[] TIMES = { 2, 4, 8 };
+	private static final int MIN_TEMPO = 60;
+	private static final int MAX_TEMPO = 240;
+	/** lowest and highest piano keys (A0 and C8) */
+	private static final int MIN_KEY = 1;
+	private static final int MAX_KEY = 88;
+	/** beat ticks allowed per note; kept below the 65535 limit in Song to absorb rounding */
+	private static final int MAX_NOTE_TICKS = 60000;
+
+	private Random random;
+
+	/**
+	 * Constructor for a new generator
+	 * @param seed the random seed; equal seeds give equal songs
+	 */
+	public SongGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Writes a single song XML file.
+	 * @param file the file to write
+	 * @param title the title of the song
+	 * @param length the number of notes in the song
+	 * @throws IOException
+	 */
+	public void writeSong(File file, String title, int length) throws IOException {
+		int tempo = MIN_TEMPO + random.nextInt(MAX_TEMPO - MIN_TEMPO + 1);
+		int time = TIMES[random.nextInt(TIMES.length)];
+		String[] values = playableValues(tempo, time);
+		boolean useFlats = random.nextBoolean();
+		int key = 28 + random.nextInt(25);	// start between C3 and C5
+
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n\n");
+			out.write("<song>\n");
+			out.write("\t<!-- Generated by SongGenerator -->\n");
+			out.write("\t<title>" + title + "</title>\n");
+			out.write("\t<tempo>" + tempo + "</tempo>\t<!-- bpm -->\n");
+			out.write("\t<pause>" + (5 + random.nextInt(26)) + "</pause>\t\t<!-- milliseconds -->\n");
+			out.write("\t<time>" + time + "</time>\n\n");
+			out.write("\t<notes>\n");
+			for (int i = 0; i < length; i++) {
+				String name;
+				if (random.nextInt(16) == 0)
+					name = "R";
+				else {
+					// random walk, mostly stepwise with the occasional leap
+					int step = random.nextInt(8) == 0 ? random.nextInt(25) - 12 : random.nextInt(5) - 2;
+					key += step;
+					if (key < MIN_KEY) key = 2 * MIN_KEY - key;
+					if (key > MAX_KEY) key = 2 * MAX_KEY - key;
+					name = keyToName(key, useFlats);
+				}
+				out.write("\t\t<note><name>" + name + "</name>\t<value>" +
+						values[random.nextInt(values.length)] + "</value></note>\n");
+			}
+			out.write("\t</notes>\n");
+			out.write("</song>\n");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes a corpus of songs into a directory, splitting the total number
+	 * of notes unevenly between them. Every song gets at least one note.
+	 * @param dir the output directory
+	 * @param songCount the number of songs to write
+	 * @param totalNotes the number of notes across all songs
+	 * @throws IOException
+	 */
+	public void writeCorpus(File dir, int songCount, long totalNotes) throws IOException {
+		double[] weights = new double[songCount];
+		double weightSum = 0;
+		for (int i = 0; i < songCount; i++) {
+			weights[i] = 0.5 + random.nextDouble();
+			weightSum += weights[i];
+		}
+
+		// round cumulative targets so rounding errors do not pile up on one song
+		long spare = totalNotes - songCount;
+		double cumWeight = 0;
+		long prevTarget = 0;
+		int width = String.valueOf(songCount).length();
+		for (int i = 0; i < songCount; i++) {
+			cumWeight += weights[i];
+			long target = (i == songCount - 1) ? spare : Math.min(spare, Math.round(spare * cumWeight / weightSum));
+			long length = 1 + target - prevTarget;
+			prevTarget = target;
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Song " + (i+1) + " would have too many notes (" + length + ")");
+			String id = String.format("%0" + width + "d", i + 1);
+			writeSong(new File(dir, "song" + id + ".xml"), "Synthetic Song " + id, (int)length);
+		}
+	}
+
+	/**
+	 * Finds the note values that are short enough to be played back
+	 * at the given tempo, using the same arithmetic as Song.getNotesBeats().
+	 * @param tempo the tempo in beats per minute
+	 * @param time the lower numeral of the time signature
+	 * @return the playable note values, e.g. "4" or "8."
+	 */
+	private String[] playableValues(int tempo, int time) {
+		StringBuilder sb = new StringBuilder();
+		for (int value : NOTE_VALUES) {
+			if (fits(tempo, time, value * 0.75f)) sb.append(value).append(".,");
+			if (fits(tempo, time, value)) sb.append(value).append(',');
+		}
+		return sb.toString().split(",");
+	}
+
+	private static boolean fits(int tempo, int time, float noteValue) {
+		return (float)Writer.CLOCK_FREQ * 60 / tempo * time / noteValue <= MAX_NOTE_TICKS;
+	}
+
+	/**
+	 * Converts a piano key into a note name in SPN.
+	 * Inverse of the key calculation done in Note.
+	 * @param key the piano key, 1 for A0 up to 88 for C8
+	 * @param useFlats whether to spell accidentals as flats instead of sharps
+	 * @return the note name, e.g. "F#4"
+	 */
+	private static String keyToName(int key, boolean useFlats) {
+		int fromC0 = key + 8;	// C0 is 8 keys below A0
+		String[] names = useFlats ? FLAT_NAMES : SHARP_NAMES;
+		return names[fromC0 % 12] + (fromC0 / 12);
+	}
+
+	/**
+	 * arguments are the output directory, the number of songs,
+	 * the total number of notes, and an optional seed
+	 * @param args
+	 */
+	public static void main(String args[]) {
+		if (args.length < 3) {
+			System.err.println("Usage: SongGenerator output_dir song_count total_notes [seed]");
+			System.exit(Error.INVALID_INPUT.ordinal() + 1);
+		}
+
+		File dir = new File(args[0]);
+		int songCount = 0;
+		long totalNotes = 0;
+		long seed = 0;
+		try {
+			songCount = Integer.parseInt(args[1]);
+			totalNotes = Long.parseLong(args[2]);
+			if (args.length > 3) seed = Long.parseLong(args[3]);
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number " + e.getMessage() + " given.  Exiting");
+			System.exit(Error.INVALID_INPUT.ordinal() + 1);
+		}
+		if (songCount < 1 || totalNotes < songCount) {
+			System.err.println("Need at least one song and at least one note per song.  Exiting");
+			System.exit(Error.INVALID_INPUT.ordinal() + 1);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("Could not create output directory " + dir + ".  Exiting");
+			System.exit(Error.INVALID_FILE.ordinal() + 1);
+		}
+
+		try {
+			new SongGenerator(seed).writeCorpus(dir, songCount, totalNotes);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(Error.SYSTEM_ERROR.ordinal() + 1);
+		}
+		System.out.println("Wrote " + songCount + " songs with " + totalNotes + " notes to " + dir);
+	}
+}
@@ -54,7 +54,8 @@ public class Writer {
 	private static final int MAX_BYTES = 192;
     /** MSP430 Timer clock in Hz */
 	public static final int CLOCK_FREQ = 32768;
-	public static final boolean DEBUG = true;
+	/** print debug output; turn off with -Dwriter.debug=false */
+	public static boolean DEBUG = Boolean.parseBoolean(System.getProperty("writer.debug", "true"));
 
 	/** Data stream from serial communication */
 	private OutputStream out;